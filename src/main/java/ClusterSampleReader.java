@@ -0,0 +1,148 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImageStack;
+import ij.process.*;
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * ClusterSampleReader
+ *
+ * Reads cluster samples written by {@link ClusterSampleWriter}, either a single
+ * cluster by index or all clusters in file order with {@link #readNext()}.
+ */
+public class ClusterSampleReader {
+        private RandomAccessFile file;
+        private long[] offsets;
+        private int[] lengths;
+        private int next = 0;
+
+        public ClusterSampleReader(java.lang.String fileName) throws IOException {
+                file = new RandomAccessFile(fileName, "r");
+                try {
+                        if (file.readInt() != ClusterSampleWriter.MAGIC) {
+                                throw new IOException(fileName + " is no cluster sample file");
+                        }
+                        int version = file.readInt();
+                        if (version != ClusterSampleWriter.VERSION) {
+                                throw new IOException("cluster sample file version " + version + " not supported");
+                        }
+                        int nClusters = file.readInt();
+                        if (nClusters < 0 || ClusterSampleWriter.HEADER_BYTES + (long) nClusters * ClusterSampleWriter.TABLE_ENTRY_BYTES > file.length()) {
+                                throw new IOException(fileName + " is corrupted: invalid number of clusters " + nClusters);
+                        }
+                        byte[] tableBytes = new byte[nClusters * ClusterSampleWriter.TABLE_ENTRY_BYTES];
+                        file.readFully(tableBytes);
+                        ByteBuffer table = ByteBuffer.wrap(tableBytes);
+                        offsets = new long[nClusters];
+                        lengths = new int[nClusters];
+                        for (int iCluster = 0; iCluster < nClusters; iCluster += 1) {
+                                offsets[iCluster] = table.getLong();
+                                lengths[iCluster] = table.getInt();
+                        }
+                } catch (IOException e) {
+                        file.close();
+                        throw e;
+                }
+        }
+
+        public int getNumberOfClusters() {
+                return offsets.length;
+        }
+
+        //random access to the cluster with index iCluster
+        public ClusterSample readCluster(int iCluster) throws IOException {
+                byte[] block = new byte[lengths[iCluster]];
+                file.seek(offsets[iCluster]);
+                file.readFully(block);
+                return decompressCluster(block);
+        }
+
+        //sequential streaming, returns null when all clusters are read
+        public ClusterSample readNext() throws IOException {
+                if (next >= offsets.length) {
+                        return null;
+                }
+                next += 1;
+                return readCluster(next - 1);
+        }
+
+        public void close() throws IOException {
+                file.close();
+        }
+
+        private ClusterSample decompressCluster(byte[] block) throws IOException {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(block))));
+                ClusterSample sample = new ClusterSample();
+                int nLabels = in.readInt();
+                sample.labels = new ArrayList<Integer>(nLabels);
+                for (int i = 0; i < nLabels; i += 1) {
+                        sample.labels.add(in.readInt());
+                }
+                sample.crop = new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                int nFrames = in.readInt();
+                int bitDepth = in.readInt();
+                int width = sample.crop.width;
+                int height = sample.crop.height;
+                sample.frames = new ImageStack(width, height);
+                for (int iFrame = 0; iFrame < nFrames && !sample.crop.isEmpty(); iFrame += 1) {
+                        sample.frames.addSlice(readProcessor(in, width, height, bitDepth));
+                }
+                in.close();
+                return sample;
+        }
+
+        //whole planes are read at once and converted from big endian bytes
+        private ImageProcessor readProcessor(DataInputStream in, int width, int height, int bitDepth) throws IOException {
+                int nPixels = width * height;
+                if (bitDepth == 8) {
+                        byte[] pixels = new byte[nPixels];
+                        in.readFully(pixels);
+                        return new ByteProcessor(width, height, pixels, null);
+                } else if (bitDepth == 16) {
+                        short[] pixels = new short[nPixels];
+                        readPlane(in, 2 * nPixels).asShortBuffer().get(pixels);
+                        return new ShortProcessor(width, height, pixels, null);
+                } else if (bitDepth == 32) {
+                        float[] pixels = new float[nPixels];
+                        readPlane(in, 4 * nPixels).asFloatBuffer().get(pixels);
+                        return new FloatProcessor(width, height, pixels, null);
+                } else if (bitDepth == 24) {
+                        int[] pixels = new int[nPixels];
+                        readPlane(in, 4 * nPixels).asIntBuffer().get(pixels);
+                        return new ColorProcessor(width, height, pixels);
+                }
+                throw new IOException("bit depth " + bitDepth + " not supported");
+        }
+
+        private ByteBuffer readPlane(DataInputStream in, int nBytes) throws IOException {
+                byte[] plane = new byte[nBytes];
+                in.readFully(plane);
+                return ByteBuffer.wrap(plane);
+        }
+
+        /**
+         * Cropped frames of one cluster together with its label record
+         * [startFrame, endFrame, xCen, yCen, radius, nObjects, xStart1, yStart1, xEnd1, yEnd1, ...].
+         * crop is the position of the frames in the original recording.
+         */
+        public static class ClusterSample {
+                public List<Integer> labels;
+                public Rectangle crop;
+                public ImageStack frames;
+        }
+}
@@ -0,0 +1,166 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImageStack;
+import ij.process.*;
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * ClusterSampleWriter
+ *
+ * Packs the cropped frames and the label record of every annotated cluster into
+ * one chunked file, so training jobs do not have to open the full recording and
+ * the json file for every epoch.
+ *
+ * File layout (big endian):
+ * header: magic "CLSP", version, number of clusters
+ * offset table: per cluster [offset (long), compressed length (int)]
+ * blocks: one deflate compressed block per cluster containing
+ * [nLabels, labels..., cropX, cropY, width, height, nFrames, bitDepth, pixels...]
+ * with labels in the format of one groundTruth entry
+ * [startFrame, endFrame, xCen, yCen, radius, nObjects, xStart1, yStart1, xEnd1, yEnd1, ...].
+ *
+ * Frames are read on the calling thread, blocks are deflated in parallel and can
+ * be read back one by one with {@link ClusterSampleReader}.
+ */
+public class ClusterSampleWriter {
+        static final int MAGIC = 0x434c5350; // "CLSP"
+        static final int VERSION = 1;
+        static final int HEADER_BYTES = 12;
+        static final int TABLE_ENTRY_BYTES = 12;
+
+        private ImageStack stack;
+
+        public ClusterSampleWriter(ImageStack stack) {
+                this.stack = stack;
+        }
+
+        //write one compressed block per cluster of groundTruth to fileName
+        public void write(List<List<Integer>> groundTruth, java.lang.String fileName) throws IOException {
+                final int nClusters = groundTruth.size();
+                final long[] offsets = new long[nClusters];
+                final int[] lengths = new int[nClusters];
+                final RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+                //blocks are written in cluster order as soon as they are compressed
+                OrderedTaskQueue<byte[]> queue = new OrderedTaskQueue<byte[]>(nClusters, "Compressing cluster samples",
+                        new OrderedTaskQueue.ResultHandler<byte[]>() {
+                                private int iCluster = 0;
+
+                                public void handle(byte[] block) throws IOException {
+                                        offsets[iCluster] = file.getFilePointer();
+                                        lengths[iCluster] = block.length;
+                                        file.write(block);
+                                        iCluster += 1;
+                                }
+                        });
+                try {
+                        file.setLength(0);
+                        file.seek(HEADER_BYTES + (long) nClusters * TABLE_ENTRY_BYTES);
+                        for (List<Integer> iCluster : groundTruth) {
+                                final List<byte[]> raw = readCluster(iCluster);
+                                queue.submit(new Callable<byte[]>() {
+                                        public byte[] call() throws IOException {
+                                                return deflate(raw);
+                                        }
+                                });
+                        }
+                        queue.finish();
+
+                        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + nClusters * TABLE_ENTRY_BYTES);
+                        header.putInt(MAGIC);
+                        header.putInt(VERSION);
+                        header.putInt(nClusters);
+                        for (int iCluster = 0; iCluster < nClusters; iCluster += 1) {
+                                header.putLong(offsets[iCluster]);
+                                header.putInt(lengths[iCluster]);
+                        }
+                        file.seek(0);
+                        file.write(header.array());
+                } finally {
+                        queue.shutdown();
+                        file.close();
+                }
+        }
+
+        //crop the bounding box of the cluster circle from startFrame to endFrame, returns the uncompressed block as
+        //[header with labels and crop, plane of frame 1, plane of frame 2, ...]
+        private List<byte[]> readCluster(List<Integer> iCluster) throws IOException {
+                int startFrame = iCluster.get(0);
+                int endFrame = iCluster.get(1);
+                int xCen = iCluster.get(2);
+                int yCen = iCluster.get(3);
+                int radius = iCluster.get(4);
+                Rectangle crop = new Rectangle(xCen - radius, yCen - radius, 2*radius, 2*radius)
+                        .intersection(new Rectangle(0, 0, stack.getWidth(), stack.getHeight()));
+                if (crop.isEmpty()) {
+                        crop = new Rectangle(0, 0, 0, 0);
+                }
+
+                List<byte[]> raw = new ArrayList<byte[]>();
+                ByteBuffer header = ByteBuffer.allocate(4 * (iCluster.size() + 7));
+                header.putInt(iCluster.size());
+                for (int label : iCluster) {
+                        header.putInt(label);
+                }
+                header.putInt(crop.x);
+                header.putInt(crop.y);
+                header.putInt(crop.width);
+                header.putInt(crop.height);
+                //startFrame is zero based, endFrame is the one based last slice of the cluster
+                header.putInt(endFrame - startFrame);
+                header.putInt(stack.getBitDepth());
+                raw.add(header.array());
+                for (int slice = startFrame + 1; slice <= endFrame && !crop.isEmpty(); slice += 1) {
+                        ImageProcessor ip = stack.getProcessor(slice);
+                        ip.setRoi(crop);
+                        raw.add(toBytes(ip.crop().getPixels()));
+                }
+                return raw;
+        }
+
+        private static byte[] deflate(List<byte[]> raw) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+                for (byte[] part : raw) {
+                        out.write(part);
+                }
+                out.close();
+                return bytes.toByteArray();
+        }
+
+        //big endian bytes of one plane
+        private static byte[] toBytes(Object pixels) throws IOException {
+                if (pixels instanceof byte[]) {
+                        return (byte[]) pixels;
+                } else if (pixels instanceof short[]) {
+                        short[] values = (short[]) pixels;
+                        ByteBuffer plane = ByteBuffer.allocate(2 * values.length);
+                        plane.asShortBuffer().put(values);
+                        return plane.array();
+                } else if (pixels instanceof float[]) {
+                        float[] values = (float[]) pixels;
+                        ByteBuffer plane = ByteBuffer.allocate(4 * values.length);
+                        plane.asFloatBuffer().put(values);
+                        return plane.array();
+                } else if (pixels instanceof int[]) {
+                        int[] values = (int[]) pixels;
+                        ByteBuffer plane = ByteBuffer.allocate(4 * values.length);
+                        plane.asIntBuffer().put(values);
+                        return plane.array();
+                }
+                throw new IOException("pixel type " + pixels.getClass().getSimpleName() + " not supported");
+        }
+}
@@ -12,6 +12,7 @@ import ij.ImageJ;
 import ij.ImagePlus;
 //import ij.gui.GenericDialog;
 import ij.plugin.filter.PlugInFilter;
+import ij.io.FileInfo;
 import ij.process.*;
 import ij.gui.*;
 //import ij.gui.WaitForUserDialog;
@@ -20,15 +21,19 @@ import java.awt.event.*;
 import java.awt.Point;
 import java.awt.Color;
 import java.awt.Scrollbar;
+import java.awt.TextField;
 import java.awt.Panel;
 import java.awt.BorderLayout;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Vector;
 import java.util.List;
 import java.io.Writer;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Type;
 
@@ -53,6 +58,8 @@ public class Cluster_Ground_Truth_Generation implements PlugInFilter, MouseListe
         //Overlay of circles for cropping out data
         protected Overlay roiOverlay;
         private boolean finished = false;
+        //directory for saving ground truth and cluster samples
+        private static final String outputDirectory = "/mnt/sdc1/mbrosowsky/Fiji_plugin/";
 
 	// image/stack property members
 	private int width;
@@ -94,6 +101,17 @@ public class Cluster_Ground_Truth_Generation implements PlugInFilter, MouseListe
         private int iniRadius;
         private boolean iniRadiusSelected = false;
 
+        //map of moving regions for suggesting intervals and checking the roi
+        private FrameChangeMap changeMap;
+        private boolean changeMapSet = false;
+        private boolean changeMapCanceled = false;
+        private boolean changeMapRecompute = false;
+        private boolean changeMapEdited = false;
+        private int changeMapTileSize;
+        private int changeMapBlockSize;
+        private float changeMapThreshold;
+        private int changeMapMinChangedPixels;
+
         //save click events
         private boolean click = false;
         private Point clickPoint = new Point();       
@@ -132,6 +150,7 @@ public class Cluster_Ground_Truth_Generation implements PlugInFilter, MouseListe
                 while(!iniRadiusSelected){
                         showDialogObjectFindRadius();
                 }
+                loadOrComputeChangeMap();
                 //generate more clusters as long as you want
                 while(!finished){
                         List<Integer> iCluster = new ArrayList<Integer>();
@@ -149,6 +168,9 @@ public class Cluster_Ground_Truth_Generation implements PlugInFilter, MouseListe
                                 selectRoi(ip);
                         }
                         roiSelected = false;
+                        if (changeMap != null && !changeMap.isRegionActive(roi.getBounds(), startFrame+1, endFrame)){
+                                IJ.showMessage("No movement found in the region of interest between start and end frame. Check the selection.");
+                        }
                         iCluster.add(xCen);
                         iCluster.add(yCen);
                         iCluster.add(radius);                   
@@ -256,6 +278,11 @@ public class Cluster_Ground_Truth_Generation implements PlugInFilter, MouseListe
                 } catch (IOException e) {
                         IJ.showMessage("Saving ground truth in json format does not work!");
                 }
+                try {
+                        new ClusterSampleWriter(stack).write(groundTruth, outputDirectory + "clusterSamples.bin");
+                } catch (IOException e) {
+                        IJ.showMessage("Saving cropped cluster samples does not work!");
+                }
 	}
 
         private void printJson(List<List<Integer>> groundTruth, java.lang.String fileName) throws IOException{
@@ -263,7 +290,7 @@ public class Cluster_Ground_Truth_Generation implements PlugInFilter, MouseListe
                 Type listOfTestObject = new TypeToken<List<List<Integer>>>(){}.getType();
 
                 //Make Serial 
-                Writer osWriter = new FileWriter("/mnt/sdc1/mbrosowsky/Fiji_plugin/" + fileName);
+                Writer osWriter = new FileWriter(outputDirectory + fileName);
                 /*
                 List<TestObject> list = Collections.synchronizedList(new ArrayList<TestObject>() );
                 list.add(new TestObject());
@@ -336,8 +363,22 @@ public class Cluster_Ground_Truth_Generation implements PlugInFilter, MouseListe
 		GenericDialog gd = new NonBlockingGenericDialog("Assign start and end frame");
 
 		// default value is 0.00, 2 digits right of the decimal point
-		gd.addNumericField("start frame", 1, 0);
-		gd.addNumericField("end frame", interval, 0);
+                // suggest the interval in which something moves inside a selection drawn on the image before
+                int defaultStart = 1;
+                int defaultEnd = interval;
+                Roi selection = image.getRoi();
+                if (changeMap != null && selection != null){
+                        Rectangle bounds = selection.getBounds();
+                        int firstActive = changeMap.firstActiveSlice(bounds);
+                        if (firstActive > 0){
+                                defaultStart = firstActive;
+                                defaultEnd = changeMap.lastActiveSlice(bounds);
+                        }
+                }
+                defaultStart = Math.max(1, Math.min(defaultStart, interval-1));
+                defaultEnd = Math.max(defaultStart+1, Math.min(defaultEnd, interval));
+		gd.addNumericField("start frame", defaultStart, 0);
+		gd.addNumericField("end frame", defaultEnd, 0);
 
 		gd.showDialog();
                 
@@ -414,6 +455,130 @@ public class Cluster_Ground_Truth_Generation implements PlugInFilter, MouseListe
 		return true;
 	}
 
+        //load the change map from the sidecar file next to the stack or compute and save it
+        private void loadOrComputeChangeMap(){
+                java.lang.String sidecar = null;
+                File source = null;
+                FileInfo fi = image.getOriginalFileInfo();
+                if (fi != null && fi.directory != null && fi.fileName != null && fi.fileName.length() > 0){
+                        source = new File(fi.directory, fi.fileName);
+                        sidecar = source.getPath() + ".changemap";
+                        if (!source.isFile()){
+                                source = null;
+                                sidecar = null;
+                        }
+                }
+                //a saved map is only offered if it belongs to the unchanged stack file
+                FrameChangeMap savedMap = null;
+                if (sidecar != null && new File(sidecar).exists()){
+                        try {
+                                savedMap = FrameChangeMap.load(sidecar);
+                                if (!savedMap.fits(stack, source)){
+                                        IJ.log("Change map " + sidecar + " does not fit the stack, computing it again.");
+                                        savedMap = null;
+                                }
+                        } catch (IOException e) {
+                                IJ.log("Loading change map " + sidecar + " does not work, computing it again.");
+                        }
+                }
+                while(!changeMapSet){
+                        showDialogChangeMap(savedMap);
+                        if (changeMapCanceled){
+                                return;
+                        }
+                }
+                if (savedMap != null && !changeMapRecompute && !changeMapEdited){
+                        changeMap = savedMap;
+                        return;
+                }
+                try {
+                        IJ.showStatus("Computing change map...");
+                        changeMap = FrameChangeMap.compute(stack, changeMapTileSize, changeMapBlockSize, changeMapThreshold, changeMapMinChangedPixels);
+                        IJ.showStatus("");
+                } catch (IOException e) {
+                        IJ.showMessage("Computing the change map does not work!");
+                        return;
+                } catch (IllegalArgumentException e) {
+                        IJ.showMessage("Computing the change map does not work: " + e.getMessage());
+                        return;
+                }
+                if (sidecar != null){
+                        try {
+                                changeMap.save(sidecar, source);
+                        } catch (IOException e) {
+                                IJ.log("Saving change map " + sidecar + " does not work, it is computed again next time.");
+                        }
+                }
+        }
+
+        private boolean showDialogChangeMap(FrameChangeMap savedMap) {
+		GenericDialog gd = new NonBlockingGenericDialog("Set parameters for finding moving regions");
+
+                // default intensity change scales with the display range, so it fits 8, 16 and 32 bit stacks
+                int digits = image.getBitDepth() == 32 ? 3 : 1;
+                double defaultThreshold = Math.max((image.getDisplayRangeMax() - image.getDisplayRangeMin()) / 25., Math.pow(10, -digits));
+                if (savedMap != null){
+                        gd.addNumericField("tile size in px", savedMap.getTileSize(), 0);
+                        gd.addNumericField("frames per block", savedMap.getBlockSize(), 0);
+                        gd.addNumericField("minimal intensity change", savedMap.getThreshold(), digits);
+                        gd.addNumericField("minimal changed pixels per tile", savedMap.getMinChangedPixels(), 0);
+                        gd.addCheckbox("compute saved change map again", false);
+                } else {
+                        gd.addNumericField("tile size in px", 32, 0);
+                        gd.addNumericField("frames per block", 10, 0);
+                        gd.addNumericField("minimal intensity change", defaultThreshold, digits);
+                        gd.addNumericField("minimal changed pixels per tile", 5, 0);
+                }
+                // remember the shown values, a saved map is reused if they are not edited
+                java.lang.String[] shownValues = getNumericFieldTexts(gd);
+
+		gd.showDialog();
+
+		if (gd.wasCanceled()){
+                        changeMapCanceled = true;
+			return false;
+                }
+
+		// get entered values
+		changeMapTileSize = (int) gd.getNextNumber();
+		changeMapBlockSize = (int) gd.getNextNumber();
+		changeMapThreshold = (float) gd.getNextNumber();
+		changeMapMinChangedPixels = (int) gd.getNextNumber();
+                changeMapRecompute = savedMap != null && gd.getNextBoolean();
+                changeMapEdited = shownValues == null || !Arrays.equals(shownValues, getNumericFieldTexts(gd));
+                if (changeMapTileSize < 1){
+                        IJ.showMessage("tile size must be at least 1. Correct the input.");
+                        return false;
+                }
+                if (changeMapBlockSize < 1){
+                        IJ.showMessage("frames per block must be at least 1. Correct the input.");
+                        return false;
+                }
+                if (changeMapThreshold < 0){
+                        IJ.showMessage("minimal intensity change must not be negative. Correct the input.");
+                        return false;
+                }
+                if (changeMapMinChangedPixels < 1 || changeMapMinChangedPixels > (long) changeMapTileSize*changeMapTileSize){
+                        IJ.showMessage("minimal changed pixels per tile must be in [1," + changeMapTileSize*changeMapTileSize + "]. Correct the input.");
+                        return false;
+                }
+                changeMapSet = true;
+		return true;
+	}
+
+        //texts of the numeric fields of gd, null if the dialog has no fields (e.g. when run from a macro)
+        private java.lang.String[] getNumericFieldTexts(GenericDialog gd){
+                Vector fields = gd.getNumericFields();
+                if (fields == null){
+                        return null;
+                }
+                java.lang.String[] texts = new java.lang.String[fields.size()];
+                for (int i=0; i<texts.length; i += 1){
+                        texts[i] = ((TextField) fields.get(i)).getText().trim();
+                }
+                return texts;
+        }
+
         private void showDialogConfirmCluster() {
 		GenericDialog gd = new NonBlockingGenericDialog("Labeled Cluster confirmation");
                 java.lang.String[] choice = new java.lang.String[2];
@@ -0,0 +1,360 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.IJ;
+import ij.ImageStack;
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * FrameChangeMap
+ *
+ * Coarse map of the regions of a stack in which something moves. The image is
+ * divided into tiles of tileSize x tileSize pixels and the slices into blocks of
+ * blockSize slices. A pixel changes if its intensity differs by more than
+ * threshold from the previous slice. A tile is active in a block if at least
+ * minChangedPixels of its pixels change in one of the slices of the block, so
+ * single noisy pixels do not activate a tile. Slice 1 has no previous slice and
+ * only counts through the following slices of its block.
+ *
+ * One bit is stored per tile and block. The map is computed in a single pass
+ * over the stack. Slices are read on the calling thread and the blocks are
+ * compared in parallel with an {@link OrderedTaskQueue}. The map can be saved
+ * as a sidecar file next to the stack together with length and modification
+ * time of the stack file.
+ */
+public class FrameChangeMap {
+        static final int MAGIC = 0x434d4150; // "CMAP"
+        static final int VERSION = 2;
+
+        private int width;
+        private int height;
+        private int nSlices;
+        private int tileSize;
+        private int blockSize;
+        private float threshold;
+        private int minChangedPixels;
+        private int nTilesX;
+        private int nTilesY;
+        private int nBlocks;
+        //bit of tile (tileX, tileY) in block is at index (block*nTilesY + tileY)*nTilesX + tileX
+        private long[] bits;
+        //length and modification time of the file the map was saved for
+        private long sourceLength = -1;
+        private long sourceLastModified = -1;
+
+        private FrameChangeMap(int width, int height, int nSlices, int tileSize, int blockSize, float threshold, int minChangedPixels) {
+                this.width = width;
+                this.height = height;
+                this.nSlices = nSlices;
+                this.tileSize = tileSize;
+                this.blockSize = blockSize;
+                this.threshold = threshold;
+                this.minChangedPixels = minChangedPixels;
+                nTilesX = (width + tileSize - 1) / tileSize;
+                nTilesY = (height + tileSize - 1) / tileSize;
+                nBlocks = (nSlices + blockSize - 1) / blockSize;
+                long nWords = ((long) nTilesX * nTilesY * nBlocks + 63) / 64;
+                if (nWords > Integer.MAX_VALUE - 8) {
+                        throw new IllegalArgumentException("too many tiles for the change map, increase tile size or frames per block");
+                }
+                bits = new long[(int) nWords];
+        }
+
+        public static FrameChangeMap compute(ImageStack stack, int tileSize, int blockSize, float threshold, int minChangedPixels) throws IOException {
+                if (tileSize < 1 || blockSize < 1 || minChangedPixels < 1) {
+                        throw new IllegalArgumentException("tile size, block size and minimal changed pixels must be at least 1");
+                }
+                final FrameChangeMap map = new FrameChangeMap(stack.getWidth(), stack.getHeight(), stack.getSize(), tileSize, blockSize, threshold, minChangedPixels);
+                OrderedTaskQueue<boolean[]> queue = new OrderedTaskQueue<boolean[]>(map.nBlocks, "Computing the change map",
+                        new OrderedTaskQueue.ResultHandler<boolean[]>() {
+                                private int nDone = 0;
+
+                                public void handle(boolean[] activeTiles) {
+                                        map.setBlock(nDone, activeTiles);
+                                        nDone += 1;
+                                        IJ.showProgress(nDone, map.nBlocks);
+                                }
+                        });
+                try {
+                        //the last slice of a block is kept for comparing the first slice of the next block,
+                        //so every slice is read exactly once
+                        Object previous = null;
+                        for (int block = 0; block < map.nBlocks; block += 1) {
+                                final Object[] slices = map.readBlock(stack, block, previous);
+                                previous = slices[slices.length - 1];
+                                queue.submit(new Callable<boolean[]>() {
+                                        public boolean[] call() {
+                                                return map.computeBlock(slices);
+                                        }
+                                });
+                        }
+                        queue.finish();
+                } finally {
+                        queue.shutdown();
+                        IJ.showProgress(1.0);
+                }
+                return map;
+        }
+
+        //pixels of the slices of block, preceded by previous, the last slice of the block before (null for the first block)
+        private Object[] readBlock(ImageStack stack, int block, Object previous) {
+                int firstSlice = block * blockSize + 1;
+                int lastSlice = Math.min(firstSlice + blockSize - 1, nSlices);
+                Object[] slices = new Object[lastSlice - firstSlice + 2];
+                slices[0] = previous;
+                for (int slice = firstSlice; slice <= lastSlice; slice += 1) {
+                        slices[slice - firstSlice + 1] = stack.getPixels(slice);
+                }
+                return slices;
+        }
+
+        private void setBlock(int block, boolean[] activeTiles) {
+                long first = (long) block * activeTiles.length;
+                for (int tile = 0; tile < activeTiles.length; tile += 1) {
+                        if (activeTiles[tile]) {
+                                setBit(first + tile);
+                        }
+                }
+        }
+
+        //active tiles of one block, tiles that are already active are not compared again
+        private boolean[] computeBlock(Object[] slices) {
+                boolean[] activeTiles = new boolean[nTilesX * nTilesY];
+                for (int i = 1; i < slices.length; i += 1) {
+                        if (slices[i - 1] == null) {
+                                continue;
+                        }
+                        for (int tileY = 0; tileY < nTilesY; tileY += 1) {
+                                for (int tileX = 0; tileX < nTilesX; tileX += 1) {
+                                        int tile = tileY * nTilesX + tileX;
+                                        if (!activeTiles[tile] && tileChanged(slices[i - 1], slices[i], tileX, tileY)) {
+                                                activeTiles[tile] = true;
+                                        }
+                                }
+                        }
+                }
+                return activeTiles;
+        }
+
+        //true if at least minChangedPixels pixels of the tile change by more than threshold
+        private boolean tileChanged(Object previous, Object current, int tileX, int tileY) {
+                int x0 = tileX * tileSize;
+                int y0 = tileY * tileSize;
+                int x1 = Math.min(x0 + tileSize, width);
+                int y1 = Math.min(y0 + tileSize, height);
+                //tiles at the right and bottom border can have fewer pixels than minChangedPixels
+                int minChangedPixels = Math.min(this.minChangedPixels, (x1 - x0) * (y1 - y0));
+                int nChanged = 0;
+                if (current instanceof byte[]) {
+                        byte[] a = (byte[]) previous;
+                        byte[] b = (byte[]) current;
+                        for (int y = y0; y < y1; y += 1) {
+                                for (int i = y * width + x0; i < y * width + x1; i += 1) {
+                                        if (Math.abs((a[i] & 0xff) - (b[i] & 0xff)) > threshold && ++nChanged >= minChangedPixels) {
+                                                return true;
+                                        }
+                                }
+                        }
+                } else if (current instanceof short[]) {
+                        short[] a = (short[]) previous;
+                        short[] b = (short[]) current;
+                        for (int y = y0; y < y1; y += 1) {
+                                for (int i = y * width + x0; i < y * width + x1; i += 1) {
+                                        if (Math.abs((a[i] & 0xffff) - (b[i] & 0xffff)) > threshold && ++nChanged >= minChangedPixels) {
+                                                return true;
+                                        }
+                                }
+                        }
+                } else if (current instanceof float[]) {
+                        float[] a = (float[]) previous;
+                        float[] b = (float[]) current;
+                        for (int y = y0; y < y1; y += 1) {
+                                for (int i = y * width + x0; i < y * width + x1; i += 1) {
+                                        if (Math.abs(a[i] - b[i]) > threshold && ++nChanged >= minChangedPixels) {
+                                                return true;
+                                        }
+                                }
+                        }
+                } else if (current instanceof int[]) {
+                        //RGB: largest difference of the three channels
+                        int[] a = (int[]) previous;
+                        int[] b = (int[]) current;
+                        for (int y = y0; y < y1; y += 1) {
+                                for (int i = y * width + x0; i < y * width + x1; i += 1) {
+                                        int difference = 0;
+                                        for (int shift = 0; shift <= 16; shift += 8) {
+                                                difference = Math.max(difference, Math.abs(((a[i] >> shift) & 0xff) - ((b[i] >> shift) & 0xff)));
+                                        }
+                                        if (difference > threshold && ++nChanged >= minChangedPixels) {
+                                                return true;
+                                        }
+                                }
+                        }
+                } else {
+                        throw new RuntimeException("pixel type " + current.getClass().getSimpleName() + " not supported");
+                }
+                return false;
+        }
+
+        private void setBit(long index) {
+                bits[(int) (index >> 6)] |= 1L << (index & 63);
+        }
+
+        private boolean getBit(long index) {
+                return (bits[(int) (index >> 6)] & (1L << (index & 63))) != 0;
+        }
+
+        public boolean isTileActive(int tileX, int tileY, int block) {
+                return getBit(((long) block * nTilesY + tileY) * nTilesX + tileX);
+        }
+
+        //true if a tile overlapping region is active in a block between firstSlice and lastSlice (one based, inclusive)
+        public boolean isRegionActive(Rectangle region, int firstSlice, int lastSlice) {
+                Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+                if (r.isEmpty()) {
+                        return false;
+                }
+                int firstBlock = (Math.max(firstSlice, 1) - 1) / blockSize;
+                int lastBlock = (Math.min(lastSlice, nSlices) - 1) / blockSize;
+                for (int block = firstBlock; block <= lastBlock; block += 1) {
+                        if (isRegionActive(r, block)) {
+                                return true;
+                        }
+                }
+                return false;
+        }
+
+        private boolean isRegionActive(Rectangle r, int block) {
+                for (int tileY = r.y / tileSize; tileY <= (r.y + r.height - 1) / tileSize; tileY += 1) {
+                        for (int tileX = r.x / tileSize; tileX <= (r.x + r.width - 1) / tileSize; tileX += 1) {
+                                if (isTileActive(tileX, tileY, block)) {
+                                        return true;
+                                }
+                        }
+                }
+                return false;
+        }
+
+        //first slice (one based) of the first movement inside region, -1 if nothing moves there;
+        //the slice before an active block is included because the block is compared to it
+        public int firstActiveSlice(Rectangle region) {
+                Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+                for (int block = 0; block < nBlocks && !r.isEmpty(); block += 1) {
+                        if (isRegionActive(r, block)) {
+                                return Math.max(block * blockSize, 1);
+                        }
+                }
+                return -1;
+        }
+
+        //last slice (one based) of the last movement inside region, -1 if nothing moves there
+        public int lastActiveSlice(Rectangle region) {
+                Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+                for (int block = nBlocks - 1; block >= 0 && !r.isEmpty(); block -= 1) {
+                        if (isRegionActive(r, block)) {
+                                return Math.min((block + 1) * blockSize, nSlices);
+                        }
+                }
+                return -1;
+        }
+
+        //true if the map was saved for source and computed for a stack with the size of stack
+        public boolean fits(ImageStack stack, File source) {
+                return width == stack.getWidth() && height == stack.getHeight() && nSlices == stack.getSize()
+                        && sourceLength == source.length() && sourceLastModified == source.lastModified();
+        }
+
+        public int getTileSize() {
+                return tileSize;
+        }
+
+        public int getBlockSize() {
+                return blockSize;
+        }
+
+        public float getThreshold() {
+                return threshold;
+        }
+
+        public int getMinChangedPixels() {
+                return minChangedPixels;
+        }
+
+        //save the map for the stack opened from source
+        public void save(java.lang.String fileName, File source) throws IOException {
+                sourceLength = source.length();
+                sourceLastModified = source.lastModified();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+                try {
+                        out.writeInt(MAGIC);
+                        out.writeInt(VERSION);
+                        out.writeLong(sourceLength);
+                        out.writeLong(sourceLastModified);
+                        out.writeInt(width);
+                        out.writeInt(height);
+                        out.writeInt(nSlices);
+                        out.writeInt(tileSize);
+                        out.writeInt(blockSize);
+                        out.writeFloat(threshold);
+                        out.writeInt(minChangedPixels);
+                        for (long word : bits) {
+                                out.writeLong(word);
+                        }
+                } finally {
+                        out.close();
+                }
+        }
+
+        public static FrameChangeMap load(java.lang.String fileName) throws IOException {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+                try {
+                        if (in.readInt() != MAGIC) {
+                                throw new IOException(fileName + " is no change map file");
+                        }
+                        int version = in.readInt();
+                        if (version != VERSION) {
+                                throw new IOException("change map file version " + version + " not supported");
+                        }
+                        long sourceLength = in.readLong();
+                        long sourceLastModified = in.readLong();
+                        int width = in.readInt();
+                        int height = in.readInt();
+                        int nSlices = in.readInt();
+                        int tileSize = in.readInt();
+                        int blockSize = in.readInt();
+                        float threshold = in.readFloat();
+                        int minChangedPixels = in.readInt();
+                        if (width < 1 || height < 1 || nSlices < 1 || tileSize < 1 || blockSize < 1 || minChangedPixels < 1) {
+                                throw new IOException(fileName + " is corrupted");
+                        }
+                        FrameChangeMap map;
+                        try {
+                                map = new FrameChangeMap(width, height, nSlices, tileSize, blockSize, threshold, minChangedPixels);
+                        } catch (IllegalArgumentException e) {
+                                throw new IOException(fileName + " is corrupted");
+                        }
+                        map.sourceLength = sourceLength;
+                        map.sourceLastModified = sourceLastModified;
+                        for (int i = 0; i < map.bits.length; i += 1) {
+                                map.bits[i] = in.readLong();
+                        }
+                        return map;
+                } finally {
+                        in.close();
+                }
+        }
+}
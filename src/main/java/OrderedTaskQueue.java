@@ -0,0 +1,77 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * OrderedTaskQueue
+ *
+ * Runs tasks on a thread pool and hands their results to a handler on the
+ * calling thread in the order the tasks were submitted. The input of the tasks
+ * is meant to be read on the calling thread, because stacks (e.g. virtual
+ * stacks) are not safe for concurrent access. At most 2*nThreads tasks are
+ * pending, so only a bounded amount of input is kept in memory.
+ */
+class OrderedTaskQueue<T> {
+        interface ResultHandler<T> {
+                void handle(T result) throws IOException;
+        }
+
+        private ExecutorService executor;
+        private int maxPending;
+        private LinkedList<Future<T>> pending = new LinkedList<Future<T>>();
+        private ResultHandler<T> handler;
+        //used in error messages, e.g. "Computing the change map"
+        private java.lang.String description;
+
+        OrderedTaskQueue(int nTasks, java.lang.String description, ResultHandler<T> handler) {
+                int nThreads = Math.max(1, Math.min(nTasks, Runtime.getRuntime().availableProcessors()));
+                executor = Executors.newFixedThreadPool(nThreads);
+                maxPending = 2*nThreads;
+                this.description = description;
+                this.handler = handler;
+        }
+
+        void submit(Callable<T> task) throws IOException {
+                pending.add(executor.submit(task));
+                while (pending.size() > maxPending) {
+                        handler.handle(get(pending.removeFirst()));
+                }
+        }
+
+        //handle the results of all remaining tasks
+        void finish() throws IOException {
+                while (!pending.isEmpty()) {
+                        handler.handle(get(pending.removeFirst()));
+                }
+        }
+
+        void shutdown() {
+                executor.shutdownNow();
+        }
+
+        private T get(Future<T> result) throws IOException {
+                try {
+                        return result.get();
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(description + " was interrupted");
+                } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException) {
+                                throw (IOException) e.getCause();
+                        }
+                        throw new IOException(description + " failed: " + e.getCause());
+                }
+        }
+}